@@ -0,0 +1,384 @@
+package org.dbiggs;
+
+import org.apache.commons.lang3.ClassUtils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.UUID;
+
+/**
+ * Streams generated entities straight to an output stream or channel.
+ * Each record is generated, written and released before the next one is generated,
+ * so memory use stays flat no matter how many records are written.
+ * File fields are set to a unique path in the temp directory that is not created on disk.
+ * A writer can be shared between threads.
+ * <p/>
+ * Fields are written in the same order they are populated by the ReflectionBuilder.
+ * Nested entities are written as nested objects for JSON Lines and as dotted column names for CSV.
+ * <p/>
+ * e.g.
+ * aGeneratedStreamOf(User.class, Format.JSON_LINES).writeTo(outputStream, 1000000);
+ */
+public class GeneratedRecordWriter<T> {
+
+    /**
+     * Output formats that records can be written in.
+     */
+    public enum Format {
+        /**
+         * One JSON object per line.
+         */
+        JSON_LINES,
+        /**
+         * A header row followed by one comma separated row per record.
+         * List, collection and map fields are not written.
+         */
+        CSV
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Class<T> entityClass;
+
+    private final Format format;
+
+    /**
+     * CSV columns, each column is the path of fields to follow from the record to the value.
+     */
+    private final List<Field[]> csvColumns;
+
+    /**
+     * SimpleDateFormat is not thread safe, so each thread gets its own.
+     */
+    private static final ThreadLocal<SimpleDateFormat> dateFormat = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            SimpleDateFormat isoDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+            isoDateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return isoDateFormat;
+        }
+    };
+
+    /**
+     * Private constructor for creating a writer.
+     * Writers are created via the static constructor method.
+     *
+     * @param entityClass Entity class to generate
+     * @param format Format to write records in
+     */
+    private GeneratedRecordWriter(Class<T> entityClass, Format format) {
+        this.entityClass = entityClass;
+        this.format = format;
+        this.csvColumns = format == Format.CSV ? getCsvColumns(entityClass) : null;
+    }
+
+    /**
+     * Static constructor that creates a writer for generated entities.
+     *
+     * @param entityClass Class for the entities to generate
+     * @param format Format to write records in
+     * @return A typed writer for the entity class
+     */
+    public static <T> GeneratedRecordWriter<T> aGeneratedStreamOf(Class<T> entityClass, Format format) {
+        return new GeneratedRecordWriter<T>(entityClass, format);
+    }
+
+    /**
+     * Generates and writes records to the output stream.
+     * The stream is flushed but not closed.
+     *
+     * @param outputStream stream to write to
+     * @param count number of records to generate
+     * @return The number of records written
+     */
+    public long writeTo(OutputStream outputStream, long count) throws IOException {
+        return write(new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8), BUFFER_SIZE),
+                count);
+    }
+
+    /**
+     * Generates and writes records to the channel.
+     * The channel is not closed.
+     *
+     * @param channel channel to write to
+     * @param count number of records to generate
+     * @return The number of records written
+     */
+    public long writeTo(WritableByteChannel channel, long count) throws IOException {
+        // the channel writer already buffers its output
+        return write(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), BUFFER_SIZE), count);
+    }
+
+    private long write(Writer writer, long count) throws IOException {
+        if (format == Format.CSV) {
+            writeCsvHeader(writer);
+        }
+        long recordsWritten = 0;
+        while (recordsWritten < count) {
+            // the entity is only referenced for the duration of this iteration, so it isn't counted as heap usage
+            T entity = ReflectionBuilder.aGeneratedForStreaming(entityClass);
+            if (format == Format.CSV) {
+                writeCsvRecord(writer, entity);
+            } else {
+                writeJsonValue(writer, entity);
+            }
+            writer.write('\n');
+            recordsWritten++;
+        }
+        writer.flush();
+        return recordsWritten;
+    }
+
+    private void writeJsonValue(Writer writer, Object value) throws IOException {
+        if (value == null) {
+            writer.write("null");
+        } else if (value instanceof Boolean) {
+            writer.write(value.toString());
+        } else if (value instanceof Number) {
+            writeJsonNumber(writer, (Number) value);
+        } else if (value instanceof Enum || isScalarType(value.getClass())) {
+            writer.write('"');
+            writeJsonEscaped(writer, formatScalar(value));
+            writer.write('"');
+        } else if (value instanceof Collection) {
+            writeJsonArray(writer, ((Collection) value).iterator());
+        } else if (value.getClass().isArray()) {
+            writer.write('[');
+            for (int i = 0; i < Array.getLength(value); i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                writeJsonValue(writer, Array.get(value, i));
+            }
+            writer.write(']');
+        } else if (value instanceof Map) {
+            writeJsonMap(writer, (Map<?, ?>) value);
+        } else {
+            writeJsonObject(writer, value);
+        }
+    }
+
+    private void writeJsonNumber(Writer writer, Number value) throws IOException {
+        if ((value instanceof Double || value instanceof Float)
+                && (Double.isNaN(value.doubleValue()) || Double.isInfinite(value.doubleValue()))) {
+            writer.write("null");
+        } else {
+            writer.write(value.toString());
+        }
+    }
+
+    private void writeJsonArray(Writer writer, Iterator<?> values) throws IOException {
+        writer.write('[');
+        boolean first = true;
+        while (values.hasNext()) {
+            if (!first) {
+                writer.write(',');
+            }
+            writeJsonValue(writer, values.next());
+            first = false;
+        }
+        writer.write(']');
+    }
+
+    private void writeJsonMap(Writer writer, Map<?, ?> map) throws IOException {
+        writer.write('{');
+        boolean first = true;
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            if (!first) {
+                writer.write(',');
+            }
+            writer.write('"');
+            writeJsonEscaped(writer, String.valueOf(entry.getKey()));
+            writer.write("\":");
+            writeJsonValue(writer, entry.getValue());
+            first = false;
+        }
+        writer.write('}');
+    }
+
+    private void writeJsonObject(Writer writer, Object value) throws IOException {
+        writer.write('{');
+        boolean first = true;
+        for (Field field : ReflectionBuilder.getFieldsToPopulate(value.getClass())) {
+            if (!first) {
+                writer.write(',');
+            }
+            writer.write('"');
+            writeJsonEscaped(writer, field.getName());
+            writer.write("\":");
+            writeJsonValue(writer, getFieldValue(value, field));
+            first = false;
+        }
+        writer.write('}');
+    }
+
+    private void writeJsonEscaped(Writer writer, String value) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            char character = value.charAt(i);
+            switch (character) {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                default:
+                    if (character < 0x20) {
+                        writer.write(String.format("\\u%04x", (int) character));
+                    } else {
+                        writer.write(character);
+                    }
+            }
+        }
+    }
+
+    private void writeCsvHeader(Writer writer) throws IOException {
+        for (int i = 0; i < csvColumns.size(); i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            StringBuilder columnName = new StringBuilder();
+            for (Field field : csvColumns.get(i)) {
+                if (columnName.length() > 0) {
+                    columnName.append('.');
+                }
+                columnName.append(field.getName());
+            }
+            writeCsvEscaped(writer, columnName.toString());
+        }
+        writer.write('\n');
+    }
+
+    private void writeCsvRecord(Writer writer, Object entity) throws IOException {
+        for (int i = 0; i < csvColumns.size(); i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            Object value = entity;
+            for (Field field : csvColumns.get(i)) {
+                value = getFieldValue(value, field);
+                if (value == null) {
+                    break;
+                }
+            }
+            if (value != null) {
+                writeCsvEscaped(writer, formatScalar(value));
+            }
+        }
+    }
+
+    private void writeCsvEscaped(Writer writer, String value) throws IOException {
+        boolean needsQuotes = false;
+        for (int i = 0; i < value.length() && !needsQuotes; i++) {
+            char character = value.charAt(i);
+            needsQuotes = character == ',' || character == '"' || character == '\n' || character == '\r';
+        }
+        if (!needsQuotes) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char character = value.charAt(i);
+            if (character == '"') {
+                writer.write('"');
+            }
+            writer.write(character);
+        }
+        writer.write('"');
+    }
+
+    /**
+     * Returns the string form of a scalar value, as used in both JSON and CSV output.
+     * Dates are written in ISO 8601 format and byte arrays are base64 encoded.
+     */
+    private String formatScalar(Object value) {
+        if (value instanceof Date) {
+            return dateFormat.get().format((Date) value);
+        } else if (value instanceof byte[]) {
+            return Base64.getEncoder().encodeToString((byte[]) value);
+        } else if (value instanceof File) {
+            return ((File) value).getPath();
+        } else if (value instanceof Enum) {
+            return ((Enum) value).name();
+        }
+        return String.valueOf(value);
+    }
+
+    /**
+     * Returns the CSV columns for a class, following the same traversal as the ReflectionBuilder.
+     * Nested entities are flattened into their own columns.
+     *
+     * @param entityClass class to get the columns for
+     * @return The field path for each column
+     */
+    private static List<Field[]> getCsvColumns(Class<?> entityClass) {
+        List<Field[]> columns = new ArrayList<Field[]>();
+        addCsvColumns(entityClass, new Field[0], columns);
+        return columns;
+    }
+
+    private static void addCsvColumns(Class<?> classToCheck, Field[] parentPath, List<Field[]> columns) {
+        for (Field field : ReflectionBuilder.getFieldsToPopulate(classToCheck)) {
+            Class<?> fieldType = field.getType();
+            if (Collection.class.isAssignableFrom(fieldType) || Map.class.isAssignableFrom(fieldType)) {
+                continue;
+            }
+            Field[] path = new Field[parentPath.length + 1];
+            System.arraycopy(parentPath, 0, path, 0, parentPath.length);
+            path[parentPath.length] = field;
+            if (isScalarType(fieldType)) {
+                columns.add(path);
+            } else if (!fieldType.isArray() && !fieldType.isInterface()
+                    && !Modifier.isAbstract(fieldType.getModifiers())) {
+                addCsvColumns(fieldType, path, columns);
+            }
+        }
+    }
+
+    /**
+     * @return Whether values of this class type are written as a single value.
+     */
+    private static boolean isScalarType(Class<?> type) {
+        return type.isPrimitive() || ClassUtils.wrapperToPrimitive(type) != null || type.isEnum()
+                || type == String.class || type == UUID.class || type == byte[].class || type == File.class
+                || Date.class.isAssignableFrom(type);
+    }
+
+    private static Object getFieldValue(Object instance, Field field) {
+        try {
+            return field.get(instance);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(String.format("Failed to get value for field %s in class %s ",
+                    field.getName(), field.getDeclaringClass().getSimpleName()), e);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.dbiggs;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Estimated heap usage of the entities generated for a class.
+ * Sizes are estimated from the field layout of each class, so no agent is needed.
+ */
+public class GenerationStats {
+
+    private final String className;
+
+    private final long shallowSize;
+
+    private final AtomicLong graphsBuilt = new AtomicLong();
+
+    private final AtomicLong totalRetainedSize = new AtomicLong();
+
+    private final AtomicLong maxRetainedSize = new AtomicLong();
+
+    GenerationStats(String className, long shallowSize) {
+        this.className = className;
+        this.shallowSize = shallowSize;
+    }
+
+    /**
+     * Record a generated graph.
+     *
+     * @param retainedSize estimated retained size of the graph
+     */
+    void recordGraph(long retainedSize) {
+        graphsBuilt.incrementAndGet();
+        totalRetainedSize.addAndGet(retainedSize);
+        long currentMax = maxRetainedSize.get();
+        while (retainedSize > currentMax && !maxRetainedSize.compareAndSet(currentMax, retainedSize)) {
+            currentMax = maxRetainedSize.get();
+        }
+    }
+
+    /**
+     * @return Name of the generated class.
+     */
+    public String getClassName() {
+        return className;
+    }
+
+    /**
+     * @return Estimated size in bytes of one instance of the class, excluding the objects it references.
+     */
+    public long getShallowSize() {
+        return shallowSize;
+    }
+
+    /**
+     * @return Number of graphs generated for the class.
+     */
+    public long getGraphsBuilt() {
+        return graphsBuilt.get();
+    }
+
+    /**
+     * @return Estimated size in bytes of all the graphs generated for the class.
+     */
+    public long getTotalRetainedSize() {
+        return totalRetainedSize.get();
+    }
+
+    /**
+     * @return Estimated size in bytes of the largest graph generated for the class.
+     */
+    public long getMaxRetainedSize() {
+        return maxRetainedSize.get();
+    }
+
+    /**
+     * @return Estimated average size in bytes of a graph generated for the class.
+     */
+    public long getAverageRetainedSize() {
+        long graphs = graphsBuilt.get();
+        return graphs == 0 ? 0 : totalRetainedSize.get() / graphs;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %s graphs, shallow size %s, average retained size %s, max retained size %s",
+                className, getGraphsBuilt(), shallowSize, getAverageRetainedSize(), getMaxRetainedSize());
+    }
+}
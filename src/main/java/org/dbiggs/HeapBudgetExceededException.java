@@ -0,0 +1,13 @@
+package org.dbiggs;
+
+/**
+ * Thrown when generating another entity would go over the heap budget set via ReflectionBuilder.limitHeapUsage.
+ */
+public class HeapBudgetExceededException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public HeapBudgetExceededException(String message) {
+        super(message);
+    }
+}
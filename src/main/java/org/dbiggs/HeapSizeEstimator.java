@@ -0,0 +1,255 @@
+package org.dbiggs;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Estimates the heap size of generated entities without needing an agent.
+ * Sizes are calculated from the field layout of each class, assuming a HotSpot style object layout.
+ * The reference size, header size and alignment are read from the HotSpot VM options where available.
+ * <p/>
+ * JDK classes are not inspected field by field, strings, arrays, collections and maps are estimated from their
+ * contents and any other JDK class is counted using its shallow size only.
+ */
+final class HeapSizeEstimator {
+
+    private static final boolean IS_64_BIT = !"32".equals(System.getProperty("sun.arch.data.model"));
+
+    /**
+     * Compressed references are used by default by 64 bit JVMs with a heap smaller than 32GB.
+     * The heap size is only used as a guess if the JVM doesn't expose the UseCompressedOops option.
+     */
+    private static final boolean COMPRESSED_REFERENCES = IS_64_BIT && getBooleanVmOption("UseCompressedOops",
+            Runtime.getRuntime().maxMemory() < 32L * 1024 * 1024 * 1024);
+
+    /**
+     * Compressed class pointers can be used without compressed references from Java 15 onwards.
+     */
+    private static final boolean COMPRESSED_CLASS_POINTERS =
+            IS_64_BIT && getBooleanVmOption("UseCompressedClassPointers", COMPRESSED_REFERENCES);
+
+    private static final int REFERENCE_SIZE = IS_64_BIT && !COMPRESSED_REFERENCES ? 8 : 4;
+
+    /**
+     * Mark word followed by the class pointer.
+     */
+    private static final int OBJECT_HEADER_SIZE = !IS_64_BIT ? 8 : COMPRESSED_CLASS_POINTERS ? 12 : 16;
+
+    private static final int ARRAY_HEADER_SIZE = OBJECT_HEADER_SIZE + 4;
+
+    private static final int OBJECT_ALIGNMENT = getIntegerVmOption("ObjectAlignmentInBytes", 8);
+
+    /**
+     * Strings are stored as latin1 byte arrays from Java 9 onwards.
+     */
+    private static final boolean COMPACT_STRINGS =
+            !System.getProperty("java.specification.version").startsWith("1.");
+
+    /**
+     * Size of a hash map entry, header, hash and key, value and next references.
+     */
+    private static final long MAP_ENTRY_SIZE = align(OBJECT_HEADER_SIZE + 4 + 3 * REFERENCE_SIZE);
+
+    /**
+     * Cached layout for each class.
+     */
+    private static final ClassValue<ClassLayout> classLayouts = new ClassValue<ClassLayout>() {
+        @Override
+        protected ClassLayout computeValue(Class<?> type) {
+            return new ClassLayout(type);
+        }
+    };
+
+    private HeapSizeEstimator() {
+    }
+
+    /**
+     * Reads a VM option from the HotSpot diagnostic bean, without needing an agent.
+     * The bean is looked up via the platform MBean server, so this works on JVMs that don't provide it.
+     *
+     * @param optionName name of the VM option
+     * @return The option value, null if the bean or option is not available
+     */
+    private static String getVmOption(String optionName) {
+        try {
+            Object option = ManagementFactory.getPlatformMBeanServer().invoke(
+                    new ObjectName("com.sun.management:type=HotSpotDiagnostic"), "getVMOption",
+                    new Object[]{optionName}, new String[]{String.class.getName()});
+            return option instanceof CompositeData ? String.valueOf(((CompositeData) option).get("value")) : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static boolean getBooleanVmOption(String optionName, boolean defaultValue) {
+        String value = getVmOption(optionName);
+        return value != null ? Boolean.parseBoolean(value) : defaultValue;
+    }
+
+    private static int getIntegerVmOption(String optionName, int defaultValue) {
+        String value = getVmOption(optionName);
+        try {
+            return value != null ? Integer.parseInt(value) : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @param type class to get the size for
+     * @return The estimated size of an instance of the class, excluding any objects it references.
+     */
+    static long shallowSize(Class<?> type) {
+        return classLayouts.get(type).shallowSize;
+    }
+
+    /**
+     * Estimates the size of the object graph, the object and every object reachable from it.
+     * Each object is only counted once. Enum constants and shared instances other than the root are not counted,
+     * since they are not retained by any one graph.
+     *
+     * @param root object at the root of the graph
+     * @return The estimated retained size in bytes.
+     */
+    static long retainedSize(Object root) {
+        Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        Deque<Object> objectsToVisit = new ArrayDeque<Object>();
+        objectsToVisit.push(root);
+        long retainedSize = 0;
+        while (!objectsToVisit.isEmpty()) {
+            Object value = objectsToVisit.pop();
+            if (!visited.add(value)) {
+                continue;
+            }
+            if (value != root && (value instanceof Enum
+                    || !isJdkClass(value.getClass()) && ReflectionBuilder.isSharedInstance(value))) {
+                continue;
+            }
+            retainedSize += sizeOf(value, objectsToVisit);
+        }
+        return retainedSize;
+    }
+
+    /**
+     * Returns the size of the value and adds the objects it references to the objects to visit.
+     */
+    private static long sizeOf(Object value, Deque<Object> objectsToVisit) {
+        Class<?> type = value.getClass();
+        if (type.isArray()) {
+            int length = Array.getLength(value);
+            if (!type.getComponentType().isPrimitive()) {
+                pushAll(objectsToVisit, (Object[]) value);
+            }
+            return arraySize(type.getComponentType(), length);
+        } else if (value instanceof String) {
+            return shallowSize(type) + arraySize(COMPACT_STRINGS ? byte.class : char.class,
+                    ((String) value).length());
+        } else if (value instanceof Collection && isJdkClass(type)) {
+            Collection<?> collection = (Collection<?>) value;
+            pushAll(objectsToVisit, collection.toArray());
+            return shallowSize(type) + (collection.isEmpty() ? 0 : arraySize(Object.class, collection.size()));
+        } else if (value instanceof Map && isJdkClass(type)) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            pushAll(objectsToVisit, map.keySet().toArray());
+            pushAll(objectsToVisit, map.values().toArray());
+            return shallowSize(type) + (map.isEmpty() ? 0 : arraySize(Object.class, map.size())
+                    + map.size() * MAP_ENTRY_SIZE);
+        }
+
+        ClassLayout classLayout = classLayouts.get(type);
+        for (Field field : classLayout.referenceFields) {
+            try {
+                Object fieldValue = field.get(value);
+                if (fieldValue != null) {
+                    objectsToVisit.push(fieldValue);
+                }
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(String.format("Failed to get value for field %s in class %s ",
+                        field.getName(), field.getDeclaringClass().getSimpleName()), e);
+            }
+        }
+        return classLayout.shallowSize;
+    }
+
+    private static void pushAll(Deque<Object> objectsToVisit, Object[] values) {
+        for (Object value : values) {
+            if (value != null) {
+                objectsToVisit.push(value);
+            }
+        }
+    }
+
+    /**
+     * JDK classes can't be inspected field by field on newer JVMs, since their packages are not open to reflection.
+     */
+    private static boolean isJdkClass(Class<?> type) {
+        return type.getClassLoader() == null || type.getName().startsWith("java.")
+                || type.getName().startsWith("javax.");
+    }
+
+    private static long arraySize(Class<?> componentType, int length) {
+        return align(ARRAY_HEADER_SIZE + (long) length * fieldSize(componentType));
+    }
+
+    private static int fieldSize(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        } else if (type == int.class || type == float.class) {
+            return 4;
+        } else if (type == short.class || type == char.class) {
+            return 2;
+        } else if (type == byte.class || type == boolean.class) {
+            return 1;
+        }
+        return REFERENCE_SIZE;
+    }
+
+    private static long align(long size) {
+        return (size + OBJECT_ALIGNMENT - 1) / OBJECT_ALIGNMENT * OBJECT_ALIGNMENT;
+    }
+
+    /**
+     * Field layout of a class, its shallow size and the fields that reference other objects.
+     * Reference fields are only read for classes that are not JDK classes.
+     */
+    private static class ClassLayout {
+
+        private final long shallowSize;
+
+        private final List<Field> referenceFields = new ArrayList<Field>();
+
+        private ClassLayout(Class<?> type) {
+            long fieldsSize = 0;
+            for (Class<?> classToCheck = type; classToCheck != null; classToCheck = classToCheck.getSuperclass()) {
+                boolean inspectFields = !isJdkClass(classToCheck);
+                for (Field field : classToCheck.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers())) {
+                        continue;
+                    }
+                    fieldsSize += fieldSize(field.getType());
+                    if (inspectFields && !field.getType().isPrimitive()) {
+                        if (!field.isAccessible()) {
+                            field.setAccessible(true);
+                        }
+                        referenceFields.add(field);
+                    }
+                }
+            }
+            this.shallowSize = align(OBJECT_HEADER_SIZE + fieldsSize);
+        }
+    }
+}
@@ -16,11 +16,17 @@ import java.lang.reflect.Modifier;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Builds a valid instance at run time using reflection.
@@ -35,18 +41,128 @@ public class ReflectionBuilder<T> implements Builder {
      * e.g. if I have objectA and objectB which both have the property fullName
      * The first one will be set to sampleValue1 and the second to sampleValue2
      */
-    protected static int propertyCount = 1;
+    protected static final AtomicLong propertyCount = new AtomicLong(1);
 
     /**
-     * Static enum counter. Each enum that is encountered is added to the map and the counter incremented.
-     * Subsequent calls to generate an value of that enum type will retrieve the enum from the map first and use the
-     * count
-     * to select the enum value to use.
+     * System property used to set the node id for counter partitioning.
      */
-    protected static Map<Class, Integer> enumCounters = new HashMap<Class, Integer>();
+    public static final String NODE_ID_PROPERTY = "reflectionBuilder.nodeId";
+
+    /**
+     * System property used to set the number of nodes for counter partitioning.
+     */
+    public static final String NODE_COUNT_PROPERTY = "reflectionBuilder.nodeCount";
+
+    /**
+     * Partition of the counter values used by this node, set either via partitionCounter or from the system
+     * properties. If null, the system properties are read when the first counter value is generated.
+     */
+    private static volatile CounterPartition counterPartition;
+
+    /**
+     * Static enum counter. Each enum that is encountered gets a counter that is incremented.
+     * Subsequent calls to generate an value of that enum type use the count to select the enum value to use.
+     * <p/>
+     * All per class state is held in ClassValue instances so that it is released when the class is unloaded,
+     * rather than pinning the class and its ClassLoader.
+     */
+    private static final ClassValue<EnumCounter> enumCounters = new ClassValue<EnumCounter>() {
+        @Override
+        protected EnumCounter computeValue(Class<?> type) {
+            return new EnumCounter(type.getEnumConstants());
+        }
+    };
+
+    /**
+     * Pools of shared instances for nested entity types.
+     * Nested fields of a type with a pool reuse an instance from its pool instead of generating a new one.
+     */
+    private static final ClassValue<AtomicReference<SharedInstancePool>> sharedInstancePools =
+            new ClassValue<AtomicReference<SharedInstancePool>>() {
+                @Override
+                protected AtomicReference<SharedInstancePool> computeValue(Class<?> type) {
+                    return new AtomicReference<SharedInstancePool>();
+                }
+            };
+
+    /**
+     * Types that currently have a shared instance pool. Only used when changing the shared types,
+     * which is done while holding the lock on this set.
+     */
+    private static final Set<Class<?>> sharedTypes = Collections.synchronizedSet(
+            Collections.newSetFromMap(new WeakHashMap<Class<?>, Boolean>()));
+
+    /**
+     * Cached fields to populate for each class.
+     *
+     * @see #getFieldsToPopulate(Class)
+     */
+    private static final ClassValue<List<Field>> fieldsToPopulate = new ClassValue<List<Field>>() {
+        @Override
+        protected List<Field> computeValue(Class<?> type) {
+            return Collections.unmodifiableList(findFieldsToPopulate(type));
+        }
+    };
+
+    /**
+     * Cached constructor to use for instantiating each class, the one with the fewest parameters.
+     */
+    private static final ClassValue<Constructor<?>> constructorsToUse = new ClassValue<Constructor<?>>() {
+        @Override
+        protected Constructor<?> computeValue(Class<?> type) {
+            Constructor<?> constructorToUse = null;
+            for (Constructor<?> constructor : type.getDeclaredConstructors()) {
+                if (constructorToUse == null || constructorToUse.getParameterTypes().length > constructor
+                        .getParameterTypes().length) {
+                    constructorToUse = constructor;
+                }
+            }
+            return constructorToUse;
+        }
+    };
+
+    /**
+     * Whether the estimated heap usage of each generated entity is recorded.
+     */
+    protected static volatile boolean trackHeapUsage = false;
+
+    /**
+     * Max estimated heap usage in bytes for all entities generated since the heap usage was last reset.
+     * Enforced whenever it is set, regardless of whether heap usage is tracked.
+     */
+    protected static volatile long heapBudget = Long.MAX_VALUE;
+
+    private static final AtomicLong estimatedHeapUsage = new AtomicLong();
+
+    /**
+     * Classes that currently have generation stats, used for listing and resetting the stats.
+     * Weakly keyed so that stats for a class are released when it is unloaded.
+     */
+    private static final Map<Class<?>, GenerationStats> generatedClasses = Collections.synchronizedMap(
+            new WeakHashMap<Class<?>, GenerationStats>());
+
+    /**
+     * Generation stats for each generated class.
+     */
+    private static final ClassValue<GenerationStats> generationStats = new ClassValue<GenerationStats>() {
+        @Override
+        protected GenerationStats computeValue(Class<?> type) {
+            GenerationStats newStats = new GenerationStats(type.getName(), HeapSizeEstimator.shallowSize(type));
+            GenerationStats existingStats = generatedClasses.putIfAbsent(type, newStats);
+            return existingStats != null ? existingStats : newStats;
+        }
+    };
 
     private T entityToBuild;
 
+    private long estimatedRetainedSize = -1;
+
+    /**
+     * Whether File values are real temp files. Streamed entities use a path that is never created,
+     * so that streaming doesn't create a file and a File.deleteOnExit entry for every record.
+     */
+    private final boolean createTempFiles;
+
 
     /**
      * Private constructor for creating a builder.
@@ -55,7 +171,26 @@ public class ReflectionBuilder<T> implements Builder {
      * @param entityClass Entity class to generate
      */
     private ReflectionBuilder(Class<T> entityClass) {
+        this(entityClass, true, true);
+    }
+
+    /**
+     * @param entityClass Entity class to generate
+     * @param recordHeapUsage whether the entity counts towards the tracked heap usage and heap budget
+     * @param createTempFiles whether File values are created as temp files
+     */
+    private ReflectionBuilder(Class<T> entityClass, boolean recordHeapUsage, boolean createTempFiles) {
+        this.createTempFiles = createTempFiles;
+        if (recordHeapUsage && estimatedHeapUsage.get() >= heapBudget) {
+            throw new HeapBudgetExceededException(String.format("Estimated heap usage %s bytes has reached the "
+                    + "budget of %s bytes, not generating %s", estimatedHeapUsage.get(), heapBudget,
+                    entityClass.getSimpleName()));
+        }
         this.entityToBuild = (T) generateRandomValue(entityClass);
+        if (recordHeapUsage && !tryRecordHeapUsage(entityClass, this)) {
+            throw new HeapBudgetExceededException(String.format("Generating %s would take the estimated heap usage "
+                    + "over the budget of %s bytes", entityClass.getSimpleName(), heapBudget));
+        }
     }
 
 
@@ -70,13 +205,244 @@ public class ReflectionBuilder<T> implements Builder {
         return new ReflectionBuilder<T>(entityClass);
     }
 
+    /**
+     * Generates an entity that is streamed straight to an output and not retained.
+     * It is not counted towards the heap usage or heap budget, and File values are not created on disk.
+     *
+     * @param entityClass Class for the entity to create
+     * @return The generated entity
+     */
+    static <T> T aGeneratedForStreaming(Class<T> entityClass) {
+        return new ReflectionBuilder<T>(entityClass, false, false).build();
+    }
+
+    /**
+     * Generates a batch of entities, stopping early if the batch would go over the byte budget.
+     * The size of each entity is estimated as it is generated. Generation stops before an entity
+     * that is expected to go over the budget, based on the size of the previous entity.
+     * If an entity turns out to be larger than expected and goes over the budget, it is discarded.
+     * Only the entities added to the batch count towards the tracked heap usage,
+     * and the batch also stops early if adding an entity would go over the heap budget.
+     *
+     * @param entityClass Class for the entities to create
+     * @param count max number of entities to create
+     * @param budgetBytes max estimated heap usage in bytes for the batch
+     * @return The generated entities, fewer than count if the budget was reached
+     */
+    public static <T> List<T> aGeneratedBatch(Class<T> entityClass, int count, long budgetBytes) {
+        List<T> batch = new ArrayList<T>();
+        long batchSize = 0;
+        long lastEntitySize = 0;
+        while (batch.size() < count && batchSize + lastEntitySize <= budgetBytes) {
+            ReflectionBuilder<T> builder = new ReflectionBuilder<T>(entityClass, false, true);
+            lastEntitySize = builder.getEstimatedRetainedSize();
+            if (batchSize + lastEntitySize > budgetBytes || !tryRecordHeapUsage(entityClass, builder)) {
+                break;
+            }
+            batch.add(builder.build());
+            batchSize += lastEntitySize;
+        }
+        return batch;
+    }
+
+    /**
+     * Record the estimated heap usage of each generated entity.
+     * Each entity graph is walked after it is generated, so this slows down generation.
+     *
+     * @param track whether to track heap usage
+     * @see #getGenerationStats()
+     */
+    public static void trackHeapUsage(boolean track) {
+        trackHeapUsage = track;
+    }
+
+    /**
+     * Limit the estimated heap usage of all entities generated from now until the heap usage is reset.
+     * Generating an entity that would go over the budget throws a HeapBudgetExceededException.
+     * The budget is enforced even if heap usage tracking is turned off.
+     * Entities streamed by a GeneratedRecordWriter are not retained, so they don't count towards the budget.
+     *
+     * @param budgetBytes max estimated heap usage in bytes, Long.MAX_VALUE for no limit
+     */
+    public static void limitHeapUsage(long budgetBytes) {
+        heapBudget = budgetBytes;
+    }
+
+    /**
+     * Reset the estimated heap usage and generation stats.
+     * Should be called once the previously generated entities are no longer referenced.
+     */
+    public static void resetHeapUsage() {
+        estimatedHeapUsage.set(0);
+        synchronized (generatedClasses) {
+            for (Class<?> generatedClass : generatedClasses.keySet()) {
+                generationStats.remove(generatedClass);
+            }
+            generatedClasses.clear();
+        }
+    }
+
+    /**
+     * @return Estimated heap usage in bytes of the entities generated since the heap usage was reset.
+     */
+    public static long getEstimatedHeapUsage() {
+        return estimatedHeapUsage.get();
+    }
+
+    /**
+     * @return Snapshot of the generation stats for each class, only recorded when heap usage is tracked.
+     */
+    public static Map<Class<?>, GenerationStats> getGenerationStats() {
+        synchronized (generatedClasses) {
+            return new HashMap<Class<?>, GenerationStats>(generatedClasses);
+        }
+    }
+
+    /**
+     * Records the heap usage of a generated entity if heap usage is tracked or limited.
+     *
+     * @param entityClass class of the generated entity
+     * @param builder builder holding the generated entity
+     * @return False if the entity would go over the heap budget, in which case it is not recorded.
+     */
+    private static boolean tryRecordHeapUsage(Class<?> entityClass, ReflectionBuilder<?> builder) {
+        if (!isHeapUsageRecorded()) {
+            return true;
+        }
+        long retainedSize = builder.getEstimatedRetainedSize();
+        if (estimatedHeapUsage.addAndGet(retainedSize) > heapBudget) {
+            estimatedHeapUsage.addAndGet(-retainedSize);
+            return false;
+        }
+        recordGenerationStats(entityClass, retainedSize);
+        return true;
+    }
+
+    /**
+     * Records the heap usage of a newly pooled shared instance.
+     * Shared instances are skipped when estimating the size of the graphs that reference them,
+     * so each one is counted once here instead. It is retained by the pool, so it is counted even if
+     * it goes over the heap budget, which stops any further generation.
+     *
+     * @param instance the pooled instance
+     */
+    private static void recordSharedInstance(Object instance) {
+        if (!isHeapUsageRecorded()) {
+            return;
+        }
+        long retainedSize = HeapSizeEstimator.retainedSize(instance);
+        estimatedHeapUsage.addAndGet(retainedSize);
+        recordGenerationStats(instance.getClass(), retainedSize);
+    }
+
+    private static void recordGenerationStats(Class<?> entityClass, long retainedSize) {
+        if (trackHeapUsage) {
+            generationStats.get(entityClass).recordGraph(retainedSize);
+        }
+    }
+
+    /**
+     * @return Whether heap usage is tracked or limited by a budget.
+     */
+    private static boolean isHeapUsageRecorded() {
+        return trackHeapUsage || heapBudget != Long.MAX_VALUE;
+    }
+
     /**
      * Reset incrementing of the property count to 1.
      * Called in the before test method in unit tests.
      * Ensures that each test executes independent of each other.
      */
     public static void resetCounter() {
-        propertyCount = 1;
+        propertyCount.set(1);
+    }
+
+    /**
+     * Partition the generated counter values between several nodes, e.g. load generators in separate JVMs.
+     * Each node generates values from its own disjoint sequence, so unique values never collide across nodes.
+     * Defaults to the values of the system properties reflectionBuilder.nodeId and reflectionBuilder.nodeCount.
+     *
+     * @param nodeId id of this node, from 0 to nodeCount - 1
+     * @param nodeCount total number of nodes generating values
+     */
+    public static void partitionCounter(int nodeId, int nodeCount) {
+        if (nodeCount < 1) {
+            throw new IllegalArgumentException("Node count must be at least 1, was " + nodeCount);
+        }
+        if (nodeId < 0 || nodeId >= nodeCount) {
+            throw new IllegalArgumentException(String.format("Node id must be between 0 and %s, was %s",
+                    nodeCount - 1, nodeId));
+        }
+        counterPartition = new CounterPartition(nodeId, nodeCount);
+    }
+
+    /**
+     * Partition the generated counter values using the system properties reflectionBuilder.nodeId and
+     * reflectionBuilder.nodeCount. Called automatically when the first counter value is generated,
+     * unless partitionCounter has already been called.
+     *
+     * @throws IllegalArgumentException if a property is not a number or is out of range
+     */
+    public static void partitionCounterFromSystemProperties() {
+        int nodeCount = getIntegerProperty(NODE_COUNT_PROPERTY, 1);
+        int nodeId = getIntegerProperty(NODE_ID_PROPERTY, 0);
+        try {
+            partitionCounter(nodeId, nodeCount);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(String.format("Invalid system properties %s=%s, %s=%s. %s",
+                    NODE_ID_PROPERTY, nodeId, NODE_COUNT_PROPERTY, nodeCount, e.getMessage()), e);
+        }
+    }
+
+    private static int getIntegerProperty(String propertyName, int defaultValue) {
+        String value = System.getProperty(propertyName);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("System property %s must be a number, was %s",
+                    propertyName, value), e);
+        }
+    }
+
+    /**
+     * @see #shareInstancesOf(Class, int)
+     */
+    public static void shareInstancesOf(Class<?> type) {
+        shareInstancesOf(type, 1);
+    }
+
+    /**
+     * Share instances of the type when it is a nested field, rather than generating a new instance for each parent.
+     * Useful for large batches where only many to one references are needed, e.g. many orders for a customer.
+     * Up to poolSize instances are generated, after that the pooled instances are reused in rotation.
+     * Entities built directly via aGenerated are never shared.
+     *
+     * @param type nested type to share instances of
+     * @param poolSize number of instances to rotate between
+     */
+    public static void shareInstancesOf(Class<?> type, int poolSize) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1, was " + poolSize);
+        }
+        synchronized (sharedTypes) {
+            sharedInstancePools.get(type).set(new SharedInstancePool(type, poolSize));
+            sharedTypes.add(type);
+        }
+    }
+
+    /**
+     * Stop sharing instances of all types. Nested fields are generated with new instances again.
+     */
+    public static void clearSharedInstances() {
+        synchronized (sharedTypes) {
+            for (Class<?> sharedType : sharedTypes) {
+                sharedInstancePools.get(sharedType).set(null);
+            }
+            sharedTypes.clear();
+        }
     }
 
     /**
@@ -210,9 +576,24 @@ public class ReflectionBuilder<T> implements Builder {
         } catch (IllegalAccessException e) {
             throw new RuntimeException(e);
         }
+        // the graph has changed, so the size is estimated again when next requested
+        estimatedRetainedSize = -1;
     }
 
 
+    /**
+     * Estimates the heap size of the built entity and every object it references.
+     * Shared nested instances are not included.
+     *
+     * @return The estimated retained size in bytes.
+     */
+    public long getEstimatedRetainedSize() {
+        if (estimatedRetainedSize == -1) {
+            estimatedRetainedSize = HeapSizeEstimator.retainedSize(entityToBuild);
+        }
+        return estimatedRetainedSize;
+    }
+
     /**
      * @return The built entity.
      */
@@ -231,27 +612,17 @@ public class ReflectionBuilder<T> implements Builder {
     }
 
     /**
-     * Recursively set all the fields within the instance starting with the specified clazz of the instance.
-     * <p/>
-     * An instance has a hierarchy of classes (instance's class, instance's parent class,
-     * etc. all the way to the Object class).
+     * Set all the fields within the instance starting with the specified clazz of the instance.
      *
      * @param instance instance whose fields are set
      * @param clazz the class to inspect
+     * @see #getFieldsToPopulate(Class)
      */
     private Object setFieldsWithRandomValuesFor(Object instance, Class<?> clazz) {
-        // Set all the fields in the instance's current class
-        for (Field field : clazz.getDeclaredFields()) {
-            if (Modifier.isStatic(field.getModifiers()) || Modifier.isFinal(field.getModifiers())) {
-                continue;
-            }
-
-            if (!field.isAccessible()) {
-                field.setAccessible(true);
-            }
+        for (Field field : getFieldsToPopulate(clazz)) {
             Class realType = getRealType(field);
 
-            Object randomValue = generateRandomValue(realType);
+            Object randomValue = generateNestedValue(realType);
             if (randomValue != null) {
                 try {
                     // only set list if existing list is null
@@ -260,16 +631,45 @@ public class ReflectionBuilder<T> implements Builder {
                     }
                 } catch (IllegalAccessException e) {
                     throw new RuntimeException(String.format("Failed to set value for field %s in class %s ",
-                            field.getName(), clazz.getSimpleName()), e);
+                            field.getName(), field.getDeclaringClass().getSimpleName()), e);
                 }
             }
         }
+        return instance;
+    }
 
-        // Set all the fields in the instance's parent class
-        if (clazz.getSuperclass() != Object.class) {
-            setFieldsWithRandomValuesFor(instance, clazz.getSuperclass());
+    /**
+     * Returns the fields that are populated for a class, in the order they are set.
+     * <p/>
+     * An instance has a hierarchy of classes (instance's class, instance's parent class,
+     * etc. all the way to the Object class).
+     * The fields of the class itself come first, followed by the fields of each parent class.
+     * Static and final fields are skipped. The returned fields are already made accessible.
+     * The fields are only looked up once per class.
+     *
+     * @param clazz the class to inspect
+     * @return The fields to populate.
+     */
+    static List<Field> getFieldsToPopulate(Class<?> clazz) {
+        return fieldsToPopulate.get(clazz);
+    }
+
+    private static List<Field> findFieldsToPopulate(Class<?> clazz) {
+        List<Field> fieldsToPopulate = new ArrayList<Field>();
+        Class<?> classToCheck = clazz;
+        while (classToCheck != null && classToCheck != Object.class) {
+            for (Field field : classToCheck.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()) || Modifier.isFinal(field.getModifiers())) {
+                    continue;
+                }
+                if (!field.isAccessible()) {
+                    field.setAccessible(true);
+                }
+                fieldsToPopulate.add(field);
+            }
+            classToCheck = classToCheck.getSuperclass();
         }
-        return instance;
+        return fieldsToPopulate;
     }
 
     /**
@@ -281,7 +681,7 @@ public class ReflectionBuilder<T> implements Builder {
     public Object generateRandomValue(Class<?> type) {
         if (type == String.class) {
             //This value can't be too long, some database fields restrict the size of a string to a small number
-            return "sampleValue" + propertyCount++;
+            return "sampleValue" + nextCounterValue(Long.MAX_VALUE);
         } else if (type == UUID.class) {
             return UUID.randomUUID();
         } else if (type == Date.class) {
@@ -289,8 +689,11 @@ public class ReflectionBuilder<T> implements Builder {
         } else if (type == Timestamp.class) {
             return new Timestamp(new Date().getTime());
         } else if (type == byte[].class) {
-            return ("sample byte data " + propertyCount++).getBytes();
+            return ("sample byte data " + nextCounterValue(Long.MAX_VALUE)).getBytes();
         } else if (type == File.class) {
+            if (!createTempFiles) {
+                return new File(System.getProperty("java.io.tmpdir"), "tempFileForCheck" + UUID.randomUUID() + ".zip");
+            }
             File tempFile;
             try {
                 tempFile = File.createTempFile("tempFileForCheck", ".zip");
@@ -302,20 +705,19 @@ public class ReflectionBuilder<T> implements Builder {
         } else if (type == Boolean.class || type == boolean.class) {
             return true;
         } else if (type == Byte.class || type == byte.class) {
-            if (propertyCount > Byte.MAX_VALUE) {
-                propertyCount = 1;
-            }
-            return (byte) propertyCount++;
+            return (byte) nextCounterValue(Byte.MAX_VALUE);
         } else if (type == Short.class || type == short.class) {
-            return (short) propertyCount++;
+            return (short) nextCounterValue(Short.MAX_VALUE);
         } else if (type == Long.class || type == long.class) {
-            return (long) propertyCount++;
+            return nextCounterValue(Long.MAX_VALUE);
         } else if (type == Integer.class || type == int.class) {
-            return propertyCount++;
+            return (int) nextCounterValue(Integer.MAX_VALUE);
         } else if (type == Double.class || type == double.class) {
-            return (double) propertyCount++;
+            // largest value for which every integer can be represented exactly
+            return (double) nextCounterValue(1L << 53);
         } else if (type == Float.class || type == float.class) {
-            return (float) propertyCount++;
+            // largest value for which every integer can be represented exactly
+            return (float) nextCounterValue(1L << 24);
         } else if (type.isEnum()) {
             return getEnumValueToUse(type);
         } else if (List.class.isAssignableFrom(type)) {
@@ -330,32 +732,65 @@ public class ReflectionBuilder<T> implements Builder {
         throw new RuntimeException("Could not set value for type " + type.getSimpleName());
     }
 
+    /**
+     * Generate a value for a field or constructor parameter of an entity.
+     * Uses a shared instance if instances of the type are shared.
+     *
+     * @param type Class type of the value to generate
+     * @return Random or shared value.
+     */
+    private Object generateNestedValue(Class<?> type) {
+        SharedInstancePool sharedInstancePool = sharedInstancePools.get(type).get();
+        if (sharedInstancePool != null) {
+            return sharedInstancePool.nextInstance(this);
+        }
+        return generateRandomValue(type);
+    }
+
+    /**
+     * @param instance instance to check
+     * @return Whether the instance is in a shared instance pool.
+     */
+    static boolean isSharedInstance(Object instance) {
+        SharedInstancePool sharedInstancePool = sharedInstancePools.get(instance.getClass()).get();
+        return sharedInstancePool != null && sharedInstancePool.contains(instance);
+    }
+
+    /**
+     * Returns the next counter value for this node, incrementing the property count.
+     * Values for node n out of nodeCount nodes are n + 1, n + 1 + nodeCount, n + 1 + 2 * nodeCount etc.
+     * If the value would be larger than the max value for the type, it loops back around to the start of this
+     * node's sequence. The shared property count is never reset, so wider types keep generating unique values.
+     *
+     * @param maxValue max value that the type being generated can hold
+     * @return The counter value to use.
+     */
+    private long nextCounterValue(long maxValue) {
+        CounterPartition partition = counterPartition;
+        if (partition == null) {
+            partitionCounterFromSystemProperties();
+            partition = counterPartition;
+        }
+        long firstValue = partition.nodeId + 1;
+        if (firstValue > maxValue) {
+            throw new RuntimeException(String.format("Node id %s is too large to generate values up to %s",
+                    partition.nodeId, maxValue));
+        }
+        long valuesPerNode = (maxValue - firstValue) / partition.nodeCount + 1;
+        long index = propertyCount.getAndIncrement() - 1;
+        return firstValue + (index % valuesPerNode) * partition.nodeCount;
+    }
+
     /**
      * Attempt to return a different enum value for each setting of this enum
      */
     private Object getEnumValueToUse(Class enumClass) {
-        if (enumCounters.get(enumClass) == null) {
-            enumCounters.put(enumClass, 0);
-        }
-        Object[] enumValues = enumClass.getEnumConstants();
-        int enumIndexToUse = enumCounters.get(enumClass);
-        // loop back around to the start of the enum if we're at the end of the enum values.
-        enumCounters.put(enumClass, (enumIndexToUse + 1 < enumValues.length) ? enumIndexToUse + 1 : 0);
-        return enumValues[enumIndexToUse];
+        return enumCounters.get(enumClass).nextValue();
     }
 
     private Object instantiateEntity(Class entityClass) {
         try {
-            Constructor[] constructors = entityClass.getDeclaredConstructors();
-            Constructor constructorToUse = null;
-            for (Constructor constructor : constructors) {
-                if (constructorToUse == null || constructorToUse.getParameterTypes().length > constructor
-                        .getParameterTypes().length) {
-                    constructorToUse = constructor;
-                }
-            }
-            return instantiateObjectViaConstructor(constructorToUse);
-
+            return instantiateObjectViaConstructor(constructorsToUse.get(entityClass));
         } catch (Exception e) {
             throw new RuntimeException("Error instantiating " + entityClass.getSimpleName(), e);
         }
@@ -374,7 +809,7 @@ public class ReflectionBuilder<T> implements Builder {
                 }
             }
             if (params[i] == null) {
-                params[i] = aGenerated(paramTypes[i]).build();
+                params[i] = generateNestedValue(paramTypes[i]);
             }
         }
         if (!constructorToUse.isAccessible()) {
@@ -415,4 +850,97 @@ public class ReflectionBuilder<T> implements Builder {
         }
     }
 
+    /**
+     * Node id and node count used to partition the counter values, published together so they are always
+     * read as a consistent pair.
+     */
+    private static class CounterPartition {
+
+        /**
+         * Id of this node, from 0 to nodeCount - 1.
+         * Generated counter values are offset by the node id so that each node produces a disjoint set of values.
+         */
+        private final int nodeId;
+
+        /**
+         * Number of nodes generating values. Used as the stride between generated counter values.
+         * e.g. with 3 nodes, node 0 generates 1, 4, 7... node 1 generates 2, 5, 8... node 2 generates 3, 6, 9...
+         */
+        private final int nodeCount;
+
+        private CounterPartition(int nodeId, int nodeCount) {
+            this.nodeId = nodeId;
+            this.nodeCount = nodeCount;
+        }
+    }
+
+    /**
+     * Cycles through the values of an enum.
+     */
+    private static class EnumCounter {
+
+        private final Object[] enumValues;
+
+        private final AtomicInteger nextIndex = new AtomicInteger();
+
+        private EnumCounter(Object[] enumValues) {
+            this.enumValues = enumValues;
+        }
+
+        private Object nextValue() {
+            int enumIndexToUse;
+            int nextEnumIndex;
+            do {
+                enumIndexToUse = nextIndex.get();
+                // loop back around to the start of the enum if we're at the end of the enum values.
+                nextEnumIndex = enumIndexToUse + 1 < enumValues.length ? enumIndexToUse + 1 : 0;
+            } while (!nextIndex.compareAndSet(enumIndexToUse, nextEnumIndex));
+            return enumValues[enumIndexToUse];
+        }
+    }
+
+    /**
+     * Rotating pool of generated instances for a shared type.
+     * Pools are shared by all threads, so access to the pooled instances is synchronized.
+     */
+    private static class SharedInstancePool {
+
+        private final Class<?> type;
+
+        private final int poolSize;
+
+        private final List<Object> instances = new ArrayList<Object>();
+
+        private int nextIndex = 0;
+
+        private SharedInstancePool(Class<?> type, int poolSize) {
+            this.type = type;
+            this.poolSize = poolSize;
+        }
+
+        /**
+         * Generates instances until the pool is full, then loops around the pooled instances.
+         */
+        private synchronized Object nextInstance(ReflectionBuilder<?> builder) {
+            if (instances.size() < poolSize) {
+                Object instance = builder.generateRandomValue(type);
+                instances.add(instance);
+                recordSharedInstance(instance);
+                return instance;
+            }
+            Object instance = instances.get(nextIndex);
+            nextIndex = nextIndex + 1 < poolSize ? nextIndex + 1 : 0;
+            return instance;
+        }
+
+        private synchronized boolean contains(Object instance) {
+            for (Object pooledInstance : instances) {
+                if (pooledInstance == instance) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
 }
@@ -0,0 +1,93 @@
+package org.dbiggs.tests;
+
+
+import org.dbiggs.GeneratedRecordWriter.Format;
+import org.dbiggs.ReflectionBuilder;
+import org.dbiggs.tests.entities.TestParentEntityToBuild;
+import org.dbiggs.tests.entities.TestRuntimeEntityToBuild;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.dbiggs.GeneratedRecordWriter.aGeneratedStreamOf;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+public class GeneratedRecordWriterTest {
+
+    @BeforeMethod
+    public void resetCounter() {
+        ReflectionBuilder.resetCounter();
+    }
+
+    @AfterMethod
+    public void resetHeapBudget() {
+        ReflectionBuilder.limitHeapUsage(Long.MAX_VALUE);
+        ReflectionBuilder.resetHeapUsage();
+    }
+
+    @Test
+    public void canWriteJsonLines() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        long recordsWritten = aGeneratedStreamOf(TestParentEntityToBuild.class, Format.JSON_LINES)
+                .writeTo(outputStream, 2);
+
+        assertEquals(recordsWritten, 2);
+        String[] lines = outputStream.toString("UTF-8").split("\n");
+        assertEquals(lines.length, 2);
+        assertEquals(lines[0], "{\"parentName\":\"sampleValue1\",\"parentCount\":2,"
+                + "\"child\":{\"name\":\"sampleValue3\",\"childId\":4},\"tags\":[]}");
+        assertEquals(lines[1], "{\"parentName\":\"sampleValue5\",\"parentCount\":6,"
+                + "\"child\":{\"name\":\"sampleValue7\",\"childId\":8},\"tags\":[]}");
+    }
+
+    @Test
+    public void canWriteCsvToChannel() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        long recordsWritten = aGeneratedStreamOf(TestParentEntityToBuild.class, Format.CSV)
+                .writeTo(Channels.newChannel(outputStream), 2);
+
+        assertEquals(recordsWritten, 2);
+        assertEquals(new String(outputStream.toByteArray(), StandardCharsets.UTF_8),
+                "parentName,parentCount,child.name,child.childId\n"
+                        + "sampleValue1,2,sampleValue3,4\n"
+                        + "sampleValue5,6,sampleValue7,8\n");
+    }
+
+    @Test
+    public void streamedRecordsDoNotCountTowardsHeapBudget() throws IOException {
+        long entitySize = ReflectionBuilder.aGenerated(TestParentEntityToBuild.class).getEstimatedRetainedSize();
+        ReflectionBuilder.limitHeapUsage(entitySize * 2);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        long recordsWritten = aGeneratedStreamOf(TestParentEntityToBuild.class, Format.JSON_LINES)
+                .writeTo(outputStream, 10);
+
+        assertEquals(recordsWritten, 10);
+        assertEquals(outputStream.toString("UTF-8").split("\n").length, 10);
+        assertEquals(ReflectionBuilder.getEstimatedHeapUsage(), 0);
+    }
+
+    @Test
+    public void streamedFileValuesAreNotCreated() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        aGeneratedStreamOf(TestRuntimeEntityToBuild.class, Format.JSON_LINES).writeTo(outputStream, 3);
+
+        Matcher fileValues = Pattern.compile("\"fileValue\":\"([^\"]+)\"").matcher(outputStream.toString("UTF-8"));
+        int fileCount = 0;
+        while (fileValues.find()) {
+            assertFalse(new File(fileValues.group(1).replace("\\\\", "\\")).exists(),
+                    "Streamed file values should not be created");
+            fileCount++;
+        }
+        assertEquals(fileCount, 3);
+    }
+
+}
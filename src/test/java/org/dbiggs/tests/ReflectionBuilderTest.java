@@ -1,12 +1,29 @@
 package org.dbiggs.tests;
 
 
+import org.apache.commons.lang3.StringUtils;
+import org.dbiggs.GenerationStats;
+import org.dbiggs.HeapBudgetExceededException;
+import org.dbiggs.ReflectionBuilder;
+import org.dbiggs.tests.entities.TestChildEntityToBuild;
+import org.dbiggs.tests.entities.TestParentEntityToBuild;
 import org.dbiggs.tests.entities.TestRuntimeEntityToBuild;
+import org.dbiggs.tests.entities.TestStatus;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.Test;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
 import static org.testng.Assert.assertTrue;
 import static org.dbiggs.ReflectionBuilder.aGenerated;
 
@@ -43,4 +60,215 @@ public class ReflectionBuilderTest {
         assertTrue(testEntity.allValuesAreSet(), "All values should be set");
     }
 
+    @Test
+    public void partitionedCounterGeneratesValuesForNode() {
+        ReflectionBuilder.partitionCounter(1, 3);
+        ReflectionBuilder.resetCounter();
+        ReflectionBuilder<TestChildEntityToBuild> builder = aGenerated(TestChildEntityToBuild.class);
+        ReflectionBuilder.resetCounter();
+        assertEquals(builder.generateRandomValue(Long.class), 2L);
+        assertEquals(builder.generateRandomValue(String.class), "sampleValue5");
+        assertEquals(builder.generateRandomValue(int.class), 8);
+    }
+
+    @Test
+    public void partitionedNodesGenerateDisjointValues() {
+        ReflectionBuilder<TestChildEntityToBuild> builder = aGenerated(TestChildEntityToBuild.class);
+        Set<Object> firstNodeValues = new HashSet<Object>();
+        ReflectionBuilder.partitionCounter(0, 2);
+        ReflectionBuilder.resetCounter();
+        for (int i = 0; i < 200; i++) {
+            firstNodeValues.add(builder.generateRandomValue(Byte.class));
+            firstNodeValues.add(builder.generateRandomValue(Float.class));
+            firstNodeValues.add(builder.generateRandomValue(String.class));
+        }
+
+        ReflectionBuilder.partitionCounter(1, 2);
+        ReflectionBuilder.resetCounter();
+        for (int i = 0; i < 200; i++) {
+            assertFalse(firstNodeValues.contains(builder.generateRandomValue(Byte.class)));
+            assertFalse(firstNodeValues.contains(builder.generateRandomValue(Float.class)));
+            assertFalse(firstNodeValues.contains(builder.generateRandomValue(String.class)));
+        }
+    }
+
+    @Test
+    public void concurrentGeneratorsGetUniqueValues() throws InterruptedException {
+        final ReflectionBuilder<TestChildEntityToBuild> builder = aGenerated(TestChildEntityToBuild.class);
+        final Set<Object> values = Collections.synchronizedSet(new HashSet<Object>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        values.add(builder.generateRandomValue(Long.class));
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(values.size(), 4000);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class,
+            expectedExceptionsMessageRegExp = ".*reflectionBuilder.nodeCount=2.*")
+    public void outOfRangeNodeIdPropertyIsRejected() {
+        System.setProperty(ReflectionBuilder.NODE_ID_PROPERTY, "2");
+        System.setProperty(ReflectionBuilder.NODE_COUNT_PROPERTY, "2");
+        try {
+            ReflectionBuilder.partitionCounterFromSystemProperties();
+        } finally {
+            System.clearProperty(ReflectionBuilder.NODE_ID_PROPERTY);
+            System.clearProperty(ReflectionBuilder.NODE_COUNT_PROPERTY);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class,
+            expectedExceptionsMessageRegExp = ".*reflectionBuilder.nodeId.*")
+    public void invalidNodeIdPropertyIsRejected() {
+        System.setProperty(ReflectionBuilder.NODE_ID_PROPERTY, "node1");
+        try {
+            ReflectionBuilder.partitionCounterFromSystemProperties();
+        } finally {
+            System.clearProperty(ReflectionBuilder.NODE_ID_PROPERTY);
+        }
+    }
+
+    @Test
+    public void byteOverflowDoesNotResetCounter() {
+        ReflectionBuilder<TestChildEntityToBuild> builder = aGenerated(TestChildEntityToBuild.class);
+        ReflectionBuilder.resetCounter();
+        for (int i = 1; i <= Byte.MAX_VALUE; i++) {
+            assertEquals(builder.generateRandomValue(Byte.class), (byte) i);
+        }
+        assertEquals(builder.generateRandomValue(Byte.class), (byte) 1);
+        assertEquals(builder.generateRandomValue(Long.class), (long) Byte.MAX_VALUE + 2);
+    }
+
+    @Test
+    public void canShareNestedInstances() {
+        ReflectionBuilder.shareInstancesOf(TestChildEntityToBuild.class, 2);
+        TestParentEntityToBuild first = aGenerated(TestParentEntityToBuild.class).build();
+        TestParentEntityToBuild second = aGenerated(TestParentEntityToBuild.class).build();
+        TestParentEntityToBuild third = aGenerated(TestParentEntityToBuild.class).build();
+
+        assertNotSame(first.getChild(), second.getChild());
+        assertSame(third.getChild(), first.getChild());
+        assertNotSame(aGenerated(TestChildEntityToBuild.class).build(), first.getChild(),
+                "Directly built entities should not be shared");
+    }
+
+    @Test
+    public void sharedInstancePoolIsThreadSafe() throws InterruptedException {
+        ReflectionBuilder.shareInstancesOf(TestChildEntityToBuild.class, 3);
+        final Set<TestChildEntityToBuild> children = Collections.synchronizedSet(
+                Collections.newSetFromMap(new IdentityHashMap<TestChildEntityToBuild, Boolean>()));
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100; j++) {
+                        children.add(aGenerated(TestParentEntityToBuild.class).build().getChild());
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(children.size(), 3, "Pool should never grow past its size");
+    }
+
+    @Test
+    public void enumValuesLoopAround() {
+        ReflectionBuilder<TestChildEntityToBuild> builder = aGenerated(TestChildEntityToBuild.class);
+        TestStatus firstValue = (TestStatus) builder.generateRandomValue(TestStatus.class);
+        for (int i = 1; i < TestStatus.values().length; i++) {
+            assertNotSame(builder.generateRandomValue(TestStatus.class), firstValue);
+        }
+        assertSame(builder.generateRandomValue(TestStatus.class), firstValue);
+    }
+
+    @Test
+    public void canTrackHeapUsage() {
+        ReflectionBuilder.trackHeapUsage(true);
+        long firstSize = aGenerated(TestParentEntityToBuild.class).getEstimatedRetainedSize();
+        long secondSize = aGenerated(TestParentEntityToBuild.class).getEstimatedRetainedSize();
+
+        GenerationStats stats = ReflectionBuilder.getGenerationStats().get(TestParentEntityToBuild.class);
+        assertEquals(stats.getGraphsBuilt(), 2);
+        assertTrue(stats.getShallowSize() > 0, "Shallow size should be estimated");
+        assertTrue(firstSize > stats.getShallowSize(), "Retained size should include nested entities");
+        assertEquals(stats.getTotalRetainedSize(), firstSize + secondSize);
+        assertEquals(ReflectionBuilder.getEstimatedHeapUsage(), firstSize + secondSize);
+    }
+
+    @Test
+    public void retainedSizeIsEstimatedAgainAfterSettingAField() throws NoSuchFieldException {
+        ReflectionBuilder.trackHeapUsage(true);
+        ReflectionBuilder<TestParentEntityToBuild> builder = aGenerated(TestParentEntityToBuild.class);
+        long sizeBefore = builder.getEstimatedRetainedSize();
+        builder.with("parentName", StringUtils.repeat('a', 100000));
+        assertTrue(builder.getEstimatedRetainedSize() > sizeBefore + 100000,
+                "Retained size should include the new value");
+    }
+
+    @Test
+    public void sharedInstancesAreCountedOnce() {
+        ReflectionBuilder.shareInstancesOf(TestChildEntityToBuild.class, 2);
+        ReflectionBuilder.trackHeapUsage(true);
+        long parentsSize = 0;
+        for (int i = 0; i < 3; i++) {
+            parentsSize += aGenerated(TestParentEntityToBuild.class).getEstimatedRetainedSize();
+        }
+
+        GenerationStats childStats = ReflectionBuilder.getGenerationStats().get(TestChildEntityToBuild.class);
+        assertEquals(childStats.getGraphsBuilt(), 2);
+        assertEquals(ReflectionBuilder.getEstimatedHeapUsage(), parentsSize + childStats.getTotalRetainedSize());
+    }
+
+    @Test
+    public void batchStopsAtBudget() {
+        long entitySize = aGenerated(TestParentEntityToBuild.class).getEstimatedRetainedSize();
+        List<TestParentEntityToBuild> batch = ReflectionBuilder.aGeneratedBatch(TestParentEntityToBuild.class, 10,
+                entitySize * 5 / 2);
+        assertEquals(batch.size(), 2);
+    }
+
+    @Test
+    public void batchOnlyRecordsEntitiesAddedToBatch() {
+        long entitySize = aGenerated(TestParentEntityToBuild.class).getEstimatedRetainedSize();
+        ReflectionBuilder.trackHeapUsage(true);
+        List<TestParentEntityToBuild> batch = ReflectionBuilder.aGeneratedBatch(TestParentEntityToBuild.class, 10,
+                entitySize * 5 / 2);
+
+        GenerationStats stats = ReflectionBuilder.getGenerationStats().get(TestParentEntityToBuild.class);
+        assertEquals(stats.getGraphsBuilt(), batch.size());
+        assertEquals(ReflectionBuilder.getEstimatedHeapUsage(), stats.getTotalRetainedSize());
+    }
+
+    @Test(expectedExceptions = HeapBudgetExceededException.class)
+    public void generationStopsAtHeapBudget() {
+        ReflectionBuilder.limitHeapUsage(1);
+        ReflectionBuilder.trackHeapUsage(false);
+        aGenerated(TestParentEntityToBuild.class);
+    }
+
+    @AfterMethod
+    public void resetSettings() {
+        ReflectionBuilder.partitionCounter(0, 1);
+        ReflectionBuilder.clearSharedInstances();
+        ReflectionBuilder.limitHeapUsage(Long.MAX_VALUE);
+        ReflectionBuilder.trackHeapUsage(false);
+        ReflectionBuilder.resetHeapUsage();
+    }
+
 }
@@ -0,0 +1,17 @@
+package org.dbiggs.tests.entities;
+
+/**
+ * Nested entity used by TestParentEntityToBuild.
+ */
+public class TestChildEntityToBuild {
+    private String name;
+    private Long childId;
+
+    public String getName() {
+        return name;
+    }
+
+    public Long getChildId() {
+        return childId;
+    }
+}
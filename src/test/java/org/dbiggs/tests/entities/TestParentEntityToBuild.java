@@ -0,0 +1,29 @@
+package org.dbiggs.tests.entities;
+
+import java.util.List;
+
+/**
+ * Entity with a nested entity and a list.
+ */
+public class TestParentEntityToBuild {
+    private String parentName;
+    private Integer parentCount;
+    private TestChildEntityToBuild child;
+    private List<String> tags;
+
+    public String getParentName() {
+        return parentName;
+    }
+
+    public Integer getParentCount() {
+        return parentCount;
+    }
+
+    public TestChildEntityToBuild getChild() {
+        return child;
+    }
+
+    public List<String> getTags() {
+        return tags;
+    }
+}
@@ -0,0 +1,10 @@
+package org.dbiggs.tests.entities;
+
+/**
+ * Enum used for checking enum value generation.
+ */
+public enum TestStatus {
+    ACTIVE,
+    SUSPENDED,
+    DELETED
+}